@@ -19,9 +19,15 @@ public class CallClass {
         options.addOption("login", true, "Select connection for the S3 storage (nonPROD, PROD)")
                 .addOption("createBucket", true, "Create new bucket")
                 .addOption("uploadFile", false, "Upload new file to an existing bucket (see properties)")
+                .addOption("uploadFileMapped", false, "Upload new file through memory mapped parts to an existing bucket (see properties)")
+                .addOption("benchmarkUpload", true, "Compares CPU and allocation of uploadFile and uploadFileMapped for n rounds (see properties)")
                 .addOption("downloadFile", false, "Download a Object with VersionID (see properties)")
                 .addOption("deleteBucket", true, "Deleting a bucket with all objects and versions")
-                .addOption("listBucketToFile", true, "Lists all objects of a bucket and exports them as file");
+                .addOption("listBucketToFile", true, "Lists all objects of a bucket and exports them as file")
+                .addOption("diff", false, "Compares two buckets, also across endpoints, and writes a manifest (see properties)")
+                .addOption("pruneVersions", true, "Deletes old versions of a versioned bucket by retention rules (see properties)")
+                .addOption("verify", true, "Verifies a local directory or a manifest file against a bucket (see properties)")
+                .addOption("query", true, "Runs an S3 Select SQL query on all objects of a bucket under a prefix (see properties)");
     }
 
     public static void main(String[] args) throws Exception {
@@ -54,29 +60,7 @@ public class CallClass {
             //hasOptions checks if option is present or not
             if (cmd.hasOption("login")) {
                 logger.info("Using cli argument -login=" + cmd.getOptionValue("login"));
-                switch (cmd.getOptionValue("login")) {
-
-                    case "nonPROD":
-                        myS3API = new S3LoadClient(properties.getProperty("Host-nonPROD"),
-                                properties.getProperty("Accesskey-nonPROD"),
-                                properties.getProperty("Securitykey-nonPROD"));
-                        break;
-
-                    case "PROD":
-                        myS3API = new S3LoadClient(properties.getProperty("Host-PROD"),
-                                properties.getProperty("Accesskey-PROD"),
-                                properties.getProperty("Securitykey-PROD"));
-                        break;
-
-
-                    default:
-                        logger.error("Host unknown");
-                        HelpFormatter formatter = new HelpFormatter();
-                        formatter.printHelp("S3Client", options);
-                        System.exit(0);
-                        break;
-                }
-
+                myS3API = login(cmd.getOptionValue("login"), properties);
             }
 
             //Create new bucket
@@ -109,6 +93,29 @@ public class CallClass {
                 myS3API.putObject(properties.getProperty("UploadBucketName"), properties.getProperty("UploadObjectname"), properties.getProperty("UploadFilename"));
             }
 
+            //Upload a new file through memory mapped parts to an existing bucket
+            if (cmd.hasOption("uploadFileMapped")) {
+                logger.info("Using cli argument -uploadFileMapped");
+                logger.info("===== Upload Properties =====");
+                logger.info("Upload Bucket: " + properties.getProperty("UploadBucketName"));
+                logger.info("Upload Objectname: " + properties.getProperty("UploadObjectname"));
+                logger.info("Upload Filename: " + properties.getProperty("UploadFilename"));
+                logger.info("Upload Part Size MB: " + properties.getProperty("UploadPartSizeMB"));
+
+                assert myS3API != null;
+                myS3API.putObjectMapped(properties.getProperty("UploadBucketName"), properties.getProperty("UploadObjectname"),
+                        properties.getProperty("UploadFilename"), uploadPartSize(properties));
+            }
+
+            //Compare both upload paths
+            if (cmd.hasOption("benchmarkUpload")) {
+                logger.info("Using cli argument -benchmarkUpload=" + cmd.getOptionValue("benchmarkUpload"));
+
+                assert myS3API != null;
+                myS3API.benchmarkUpload(properties.getProperty("UploadBucketName"), properties.getProperty("UploadObjectname"),
+                        properties.getProperty("UploadFilename"), uploadPartSize(properties),
+                        Integer.parseInt(cmd.getOptionValue("benchmarkUpload")));
+            }
 
             //Download a file
             if (cmd.hasOption("downloadFile")) {
@@ -128,12 +135,106 @@ public class CallClass {
                 assert myS3API != null;
                 myS3API.listObjects(cmd.getOptionValue("listBucketToFile"), "Export_" + cmd.getOptionValue("listBucketToFile") + ".csv");
             }
+
+            //Compares two buckets and writes the differences as manifest
+            if (cmd.hasOption("diff")) {
+                logger.info("Using cli argument -diff");
+                logger.info("===== Diff Properties =====");
+                logger.info("Diff Source Bucket: " + properties.getProperty("DiffSourceBucketName"));
+                logger.info("Diff Target Login: " + properties.getProperty("DiffTargetLogin"));
+                logger.info("Diff Target Bucket: " + properties.getProperty("DiffTargetBucketName"));
+                logger.info("Diff Manifest: " + properties.getProperty("DiffManifestFilename"));
+
+                assert myS3API != null;
+                String targetLogin = properties.getProperty("DiffTargetLogin");
+                S3LoadClient target = (targetLogin == null || targetLogin.isEmpty()
+                        || targetLogin.equals(cmd.getOptionValue("login"))) ? myS3API : login(targetLogin, properties);
+                myS3API.diffBuckets(properties.getProperty("DiffSourceBucketName"), target,
+                        properties.getProperty("DiffTargetBucketName"), properties.getProperty("DiffManifestFilename"),
+                        Boolean.parseBoolean(properties.getProperty("DiffCompareVersion")));
+            }
+
+            //Deletes old versions of a versioned bucket
+            if (cmd.hasOption("pruneVersions")) {
+                logger.info("Using cli argument -pruneVersions=" + cmd.getOptionValue("pruneVersions"));
+                logger.info("===== Prune Properties =====");
+                logger.info("Prune Keep Newest: " + properties.getProperty("PruneKeepNewest"));
+                logger.info("Prune Noncurrent Days: " + properties.getProperty("PruneNoncurrentDays"));
+                logger.info("Prune Delete Markers: " + properties.getProperty("PruneDeleteMarkers"));
+                logger.info("Prune Dry Run: " + properties.getProperty("PruneDryRun"));
+                logger.info("Prune Threads: " + properties.getProperty("PruneThreads"));
+
+                assert myS3API != null;
+                myS3API.pruneVersions(cmd.getOptionValue("pruneVersions"),
+                        Integer.parseInt(properties.getProperty("PruneKeepNewest", "0")),
+                        Integer.parseInt(properties.getProperty("PruneNoncurrentDays", "0")),
+                        Boolean.parseBoolean(properties.getProperty("PruneDeleteMarkers")),
+                        Boolean.parseBoolean(properties.getProperty("PruneDryRun", "true")),
+                        Integer.parseInt(properties.getProperty("PruneThreads", "4")));
+            }
+
+            //Verifies local copies or a manifest against a bucket
+            if (cmd.hasOption("verify")) {
+                logger.info("Using cli argument -verify=" + cmd.getOptionValue("verify"));
+                logger.info("===== Verify Properties =====");
+                logger.info("Verify Bucket: " + properties.getProperty("VerifyBucketName"));
+                logger.info("Verify Prefix: " + properties.getProperty("VerifyPrefix"));
+                logger.info("Verify Threads: " + properties.getProperty("VerifyThreads"));
+
+                assert myS3API != null;
+                myS3API.verify(properties.getProperty("VerifyBucketName"), properties.getProperty("VerifyPrefix", ""),
+                        cmd.getOptionValue("verify"),
+                        Integer.parseInt(properties.getProperty("VerifyThreads",
+                                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+            }
+
+            //Runs an S3 Select query on the objects of a bucket
+            if (cmd.hasOption("query")) {
+                logger.info("Using cli argument -query=" + cmd.getOptionValue("query"));
+                logger.info("===== Query Properties =====");
+                logger.info("Query Prefix: " + properties.getProperty("QueryPrefix"));
+                logger.info("Query Expression: " + properties.getProperty("QueryExpression"));
+                logger.info("Query Format: " + properties.getProperty("QueryFormat"));
+                logger.info("Query Fallback Pattern: " + properties.getProperty("QueryFallbackPattern"));
+                logger.info("Query Output: " + properties.getProperty("QueryOutputFilename"));
+                logger.info("Query Threads: " + properties.getProperty("QueryThreads"));
+
+                assert myS3API != null;
+                myS3API.selectObjects(cmd.getOptionValue("query"), properties.getProperty("QueryPrefix", ""),
+                        properties.getProperty("QueryExpression"), properties.getProperty("QueryFormat", "CSV"),
+                        properties.getProperty("QueryFallbackPattern"), properties.getProperty("QueryOutputFilename"),
+                        Integer.parseInt(properties.getProperty("QueryThreads", "4")));
+            }
         } catch (ParseException e) {
             logger.error("Failed to parse command line properties");
             help();
         }
     }
 
+    private static S3LoadClient login(String login, Properties properties) {
+        switch (login) {
+
+            case "nonPROD":
+                return new S3LoadClient(properties.getProperty("Host-nonPROD"),
+                        properties.getProperty("Accesskey-nonPROD"),
+                        properties.getProperty("Securitykey-nonPROD"));
+
+            case "PROD":
+                return new S3LoadClient(properties.getProperty("Host-PROD"),
+                        properties.getProperty("Accesskey-PROD"),
+                        properties.getProperty("Securitykey-PROD"));
+
+            default:
+                logger.error("Host unknown");
+                help();
+                return null;
+        }
+    }
+
+    private static long uploadPartSize(Properties properties) {
+        return Long.parseLong(properties.getProperty("UploadPartSizeMB", "64")) * 1024 * 1024;
+    }
+
     private static void help() {
         HelpFormatter formatter = new HelpFormatter();
         formatter.printHelp("S3Client", options);
@@ -25,13 +25,48 @@ import com.amazonaws.retry.RetryUtils;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.IOUtils;
+import com.amazonaws.util.SdkHttpUtils;
 import com.amazonaws.util.StringUtils;
+import io.minio.MinioClient;
+import io.minio.SelectObjectContentArgs;
+import io.minio.SelectResponseStream;
+import io.minio.errors.ErrorResponseException;
+import io.minio.messages.CompressionType;
+import io.minio.messages.FileHeaderInfo;
+import io.minio.messages.InputSerialization;
+import io.minio.messages.JsonType;
+import io.minio.messages.OutputSerialization;
+import io.minio.messages.QuoteFields;
+import io.minio.messages.Stats;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 
 import static com.amazonaws.retry.PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY;
@@ -42,7 +77,16 @@ public class S3LoadClient {
     private static final Logger logger = LogManager.getLogger(S3LoadClient.class.getName());
 
 
-    private static AmazonS3 s3Client;
+    // Pro Instanz, damit zwei Endpunkte (z.B. nonPROD und PROD) parallel genutzt werden können
+    private AmazonS3 s3Client;
+
+    // Für S3 Select, das vom AWS SDK in dieser Version nicht unterstützt wird, erst bei Bedarf per MinIO Client
+    private String endpoint;
+    private String accessKey;
+    private String secretKey;
+
+    // Wird gesetzt, sobald der Endpunkt S3 Select ablehnt, danach wird direkt clientseitig gefiltert
+    private volatile boolean selectUnsupported;
 
     /**
      * Erzeugt einen neuen S3LoadClient
@@ -83,6 +127,10 @@ public class S3LoadClient {
                     .withCredentials(new AWSStaticCredentialsProvider(credentials))
                     .build();
 
+            this.endpoint = endpoint;
+            this.accessKey = accessKey;
+            this.secretKey = secretKey;
+
 
         } catch (AmazonServiceException ase) {
             logger.error("Caught an AmazonServiceException, which means your request made it "
@@ -266,9 +314,93 @@ public class S3LoadClient {
 
             logger.info("File Information:");
             logger.info("Objectname is: " + objectname);
-            logger.info("Version id of the object is: " + result.getETag());
+            logger.info("Version id of the object is: " + result.getVersionId());
+            logger.info("ETag of the object is: " + result.getETag());
+
+
+            logger.info("Upload completed");
+
+        } catch (AmazonServiceException ase) {
+            logger.error("Caught an AmazonServiceException, which means your request made it "
+                    + "to Amazon S3, but was rejected with an error response for some reason.");
+            logger.error("Error Message:    " + ase.getMessage());
+            logger.error("HTTP Status Code: " + ase.getStatusCode());
+            logger.error("AWS Error Code:   " + ase.getErrorCode());
+            logger.error("Error Type:       " + ase.getErrorType());
+            logger.error("Request ID:       " + ase.getRequestId());
+            throw (ase);
+        } catch (AmazonClientException ace) {
+            logger.error("Caught an AmazonClientException, which means the client encountered "
+                    + "a serious internal problem while trying to communicate with S3, "
+                    + "such as not being able to access the network.");
+            logger.error("Error Message: " + ace.getMessage());
+            throw (ace);
+        }
+    }
+
+    /**
+     * Überträgt ein Objekt auf das Storage und liest die Datei dabei über Memory Mapped Buffer.
+     * Die Datei wird in Teilen der Größe partSize gemappt und als Multipart Upload übertragen. Dabei entfallen
+     * FileInputStream und eigene Lesepuffer, beim Senden kopieren SDK und HttpClient die Daten aber weiterhin
+     * in ihre Heap Puffer.
+     * Dateien bis partSize werden mit einem einzelnen Put übertragen.
+     *
+     * @param bucket     Der Name des Buckets
+     * @param objectname Der ObjektName des Objekts im Storage
+     * @param filename   Dateiname des zu übertragenden Objekts
+     * @param partSize   Größe eines Teils in Bytes (mindestens 5 MB, höchstens 2 GB), wird bei sehr großen
+     *                   Dateien erhöht, damit höchstens 10000 Teile entstehen
+     * @throws Exception Exception
+     */
+    public void putObjectMapped(String bucket, String objectname, String filename, long partSize)
+            throws AmazonServiceException, AmazonClientException, Exception {
+
+        long size = Math.min(Math.max(partSize, 5L * 1024 * 1024), Integer.MAX_VALUE);
+        String uploadId = null;
+
+        try (FileChannel channel = FileChannel.open(new File(filename).toPath(), StandardOpenOption.READ)) {
+            logger.info("Uploading a new object to S3 from a memory mapped file");
+            long length = channel.size();
+            // S3 erlaubt höchstens 10000 Teile je Multipart Upload
+            size = Math.max(size, (length + 9999) / 10000);
+
+            if (length <= size) {
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(length);
+                PutObjectResult result = s3Client.putObject(new PutObjectRequest(bucket, objectname,
+                        new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, length)), metadata));
+                logger.info("Objectname is: " + objectname);
+                logger.info("ETag of the object is: " + result.getETag());
+                logger.info("Upload completed");
+                return;
+            }
+
+            uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, objectname)).getUploadId();
+            List<PartETag> partETags = new ArrayList<>();
+            int partNumber = 1;
+            for (long position = 0; position < length; position += size, partNumber++) {
+                long currentSize = Math.min(size, length - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, currentSize);
+                UploadPartResult part = s3Client.uploadPart(new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(objectname)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withPartSize(currentSize)
+                        .withInputStream(new ByteBufferInputStream(region))
+                        .withLastPart(position + currentSize >= length));
+                partETags.add(part.getPartETag());
+                logger.debug("Uploaded part " + partNumber + " of " + objectname);
+            }
 
+            CompleteMultipartUploadResult result = s3Client.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucket, objectname, uploadId, partETags));
+            uploadId = null;
 
+            logger.info("File Information:");
+            logger.info("Objectname is: " + objectname);
+            logger.info("Parts: " + partETags.size());
+            logger.info("ETag of the object is: " + result.getETag());
             logger.info("Upload completed");
 
         } catch (AmazonServiceException ase) {
@@ -286,6 +418,160 @@ public class S3LoadClient {
                     + "such as not being able to access the network.");
             logger.error("Error Message: " + ace.getMessage());
             throw (ace);
+        } finally {
+            if (uploadId != null) {
+                logger.info("Aborting multipart upload " + uploadId);
+                s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, objectname, uploadId));
+            }
+        }
+    }
+
+    /**
+     * Vergleicht den bisherigen Upload (putObject) mit dem Upload über Memory Mapped Buffer (putObjectMapped).
+     * Gemessen werden CPU Zeit und allokierte Bytes des aufrufenden Threads, beide Varianten übertragen
+     * synchron auf diesem Thread. Hochgeladen wird auf einen eigenen Objektnamen neben objectname, dessen
+     * Versionen am Ende gelöscht werden.
+     *
+     * @param bucket     Der Name des Buckets
+     * @param objectname Der ObjektName, aus dem der Name des Testobjekts gebildet wird
+     * @param filename   Dateiname des zu übertragenden Objekts
+     * @param partSize   Größe eines Teils in Bytes für putObjectMapped
+     * @param rounds     Anzahl der Uploads je Variante
+     * @throws Exception Exception
+     */
+    public void benchmarkUpload(String bucket, String objectname, String filename, long partSize, int rounds)
+            throws Exception {
+
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            throw new UnsupportedOperationException("Allocation measurement not supported by this JVM");
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        long threadId = Thread.currentThread().getId();
+        File file = new File(StringUtils.isNullOrEmpty(filename) ? "" : filename);
+        if (!file.isFile() || file.length() == 0 || rounds <= 0) {
+            throw new IllegalArgumentException("Benchmark needs a non empty upload file and at least one round: "
+                    + filename + ", " + rounds + " rounds");
+        }
+        double gigabytes = (double) file.length() * rounds / (1024L * 1024 * 1024);
+        // Eigener Objektname, damit das eigentliche Objekt und seine Versionen unberührt bleiben
+        String scratchKey = objectname + ".benchmark-" + System.currentTimeMillis();
+
+        try {
+            for (int variant = 0; variant < 2; variant++) {
+                String name = variant == 0 ? "putObject" : "putObjectMapped";
+                long cpu = threadBean.getCurrentThreadCpuTime();
+                long allocated = allocationBean.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+
+                for (int i = 0; i < rounds; i++) {
+                    if (variant == 0) {
+                        putObject(bucket, scratchKey, filename);
+                    } else {
+                        putObjectMapped(bucket, scratchKey, filename, partSize);
+                    }
+                }
+
+                double seconds = (System.nanoTime() - start) / 1e9;
+                double cpuMillis = (threadBean.getCurrentThreadCpuTime() - cpu) / 1e6;
+                double allocatedMB = (allocationBean.getThreadAllocatedBytes(threadId) - allocated) / (1024.0 * 1024);
+
+                logger.info(String.format("%-16s %8.1f ms CPU/GB  %10.1f MB allocated/GB  %8.1f MB/s allocation rate  %8.1f MB/s throughput",
+                        name, cpuMillis / gigabytes, allocatedMB / gigabytes, allocatedMB / seconds,
+                        gigabytes * 1024 / seconds));
+            }
+        } finally {
+            deleteAllVersions(bucket, scratchKey);
+        }
+    }
+
+    /**
+     * Löscht alle Versionen und Delete Marker eines Objekts. Fehler werden nur protokolliert.
+     *
+     * @param bucket     Der Name des Buckets
+     * @param objectname Der ObjektName des Objekts im Storage
+     */
+    private void deleteAllVersions(String bucket, String objectname) {
+        try {
+            int deleted = 0;
+            VersionListing versionList = s3Client.listVersions(new ListVersionsRequest()
+                    .withBucketName(bucket)
+                    .withPrefix(objectname));
+            while (true) {
+                for (S3VersionSummary vs : versionList.getVersionSummaries()) {
+                    if (vs.getKey().equals(objectname)) {
+                        s3Client.deleteVersion(bucket, objectname, vs.getVersionId());
+                        deleted++;
+                    }
+                }
+                if (versionList.isTruncated()) {
+                    versionList = s3Client.listNextBatchOfVersions(versionList);
+                } else {
+                    break;
+                }
+            }
+            logger.info("Deleted " + deleted + " versions of " + objectname);
+        } catch (AmazonClientException ace) {
+            logger.warn("Could not delete the versions of " + objectname + ": " + ace.getMessage());
+        }
+    }
+
+    /**
+     * InputStream über einen ByteBuffer, unterstützt mark/reset ohne zusätzliche Puffer,
+     * damit das SDK bei einem Retry nicht selbst puffern muss.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+            ((Buffer) this.buffer).mark();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            ((Buffer) buffer).position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            ((Buffer) buffer).mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            ((Buffer) buffer).reset();
         }
     }
 
@@ -460,8 +746,7 @@ public class S3LoadClient {
             logger.info("Content-Type: " + object.getObjectMetadata().getContentType());
             // displayTextInputStream(object.getObjectContent());
             File targetFile = new File(fileName);
-            java.nio.file.Files.copy(object.getObjectContent(), targetFile.toPath(),
-                    StandardCopyOption.REPLACE_EXISTING);
+            downloadVerified(object, targetFile);
             logger.info("file successfully downloaded and stored");
             // targetFile.delete();
             targetFile = null;
@@ -498,7 +783,9 @@ public class S3LoadClient {
 
             S3Object object = s3Client.getObject(new GetObjectRequest(bucketName, objectName));
             logger.info("Content-Type: " + object.getObjectMetadata().getContentType());
-            displayTextInputStream(object.getObjectContent(), false);
+            ChecksumInputStream content = openVerified(object);
+            displayTextInputStream(content, false);
+            content.verify();
             logger.info("file successfully downloaded");
         } catch (AmazonServiceException ase) {
             logger.error("Caught an AmazonServiceException, which means your request made it "
@@ -536,8 +823,7 @@ public class S3LoadClient {
             logger.info("Content-Type: " + object.getObjectMetadata().getContentType());
             //displayTextInputStream(object.getObjectContent(), false);
             File targetFile = new File(objectName);
-            java.nio.file.Files.copy(object.getObjectContent(), targetFile.toPath(),
-                    StandardCopyOption.REPLACE_EXISTING);
+            downloadVerified(object, targetFile);
             logger.info("file successfully downloaded and stored");
             // targetFile.delete();
             targetFile = null;
@@ -613,4 +899,1268 @@ public class S3LoadClient {
             logger.error("Error Message: " + ace.getMessage());
         }
     }
+
+
+    /**
+     * Vergleicht zwei Buckets (auch auf unterschiedlichen Endpunkten) und schreibt die Unterschiede als Manifest.
+     * Beide Seiten werden gleichzeitig als sortierte Schlüsselströme gelistet und in einem Durchlauf
+     * zusammengeführt, der Speicherbedarf ist unabhängig von der Anzahl der Objekte.
+     * <p>
+     * Format einer Manifest-Zeile: Status;Bucket;Objektname;VersionID;Größe;ETag
+     * (die VersionID ist nur bei compareVersion gefüllt, nur dann werden alle Versionen gelistet).
+     * Der Objektname ist URL-kodiert (RFC 3986, '/' bleibt erhalten), da er ';' und Zeilenumbrüche enthalten darf.
+     * ETags werden nur verglichen, wenn beide keine Multipart ETags sind, siehe etagsDiffer.
+     * <ul>
+     * <li>MISSING - Objekt fehlt im Ziel-Bucket (Angaben der Quelle, Kandidat für einen Copy-Job)</li>
+     * <li>EXTRA   - Objekt existiert nur im Ziel-Bucket (Angaben des Ziels, Kandidat für einen Delete-Job)</li>
+     * <li>CHANGED - Größe, ETag oder (optional) VersionID unterscheiden sich (Angaben der Quelle)</li>
+     * </ul>
+     *
+     * @param sourceBucket   Der Name des Quell-Buckets auf diesem Endpunkt
+     * @param target         Der S3LoadClient des Ziel-Endpunkts (darf dieser Client sein)
+     * @param targetBucket   Der Name des Ziel-Buckets
+     * @param filename       Dateiname des Manifests
+     * @param compareVersion true falls auch abweichende VersionIDs als CHANGED gemeldet werden sollen
+     * @throws Exception Exception
+     */
+    public void diffBuckets(String sourceBucket, S3LoadClient target, String targetBucket, String filename,
+                            boolean compareVersion) throws Exception {
+
+        long missing = 0, extra = 0, changed = 0, equal = 0;
+        logger.info("Diff bucket \"" + sourceBucket + "\" against \"" + targetBucket + "\" to File \"" + filename + "\"");
+
+        // Alle Versionen zu listen ist nur nötig, wenn die VersionIDs verglichen werden sollen
+        try (LatestVersionStream source = new LatestVersionStream(s3Client, sourceBucket, compareVersion);
+             LatestVersionStream destination = new LatestVersionStream(target.s3Client, targetBucket, compareVersion);
+             BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
+
+            S3VersionSummary src = source.hasNext() ? source.next() : null;
+            S3VersionSummary dst = destination.hasNext() ? destination.next() : null;
+
+            while (src != null || dst != null) {
+                int order;
+                if (src == null) {
+                    order = 1;
+                } else if (dst == null) {
+                    order = -1;
+                } else {
+                    order = compareKeys(src.getKey(), dst.getKey());
+                }
+
+                if (order < 0) {
+                    writeManifestLine(writer, "MISSING", src);
+                    missing++;
+                    src = source.hasNext() ? source.next() : null;
+                } else if (order > 0) {
+                    writeManifestLine(writer, "EXTRA", dst);
+                    extra++;
+                    dst = destination.hasNext() ? destination.next() : null;
+                } else {
+                    boolean differs = src.getSize() != dst.getSize()
+                            || etagsDiffer(src.getETag(), dst.getETag())
+                            || compareVersion && !String.valueOf(src.getVersionId()).equals(String.valueOf(dst.getVersionId()));
+                    if (differs) {
+                        writeManifestLine(writer, "CHANGED", src);
+                        changed++;
+                    } else {
+                        equal++;
+                    }
+                    src = source.hasNext() ? source.next() : null;
+                    dst = destination.hasNext() ? destination.next() : null;
+                }
+            }
+
+            logger.info("Diff finished: " + equal + " equal, " + missing + " missing, " + extra + " extra, "
+                    + changed + " changed");
+        } catch (AmazonServiceException ase) {
+            logger.error("Caught an AmazonServiceException, which means your request made it "
+                    + "to Amazon S3, but was rejected with an error response for some reason.");
+            logger.error("Error Message:    " + ase.getMessage());
+            logger.error("HTTP Status Code: " + ase.getStatusCode());
+            logger.error("AWS Error Code:   " + ase.getErrorCode());
+            logger.error("Error Type:       " + ase.getErrorType());
+            logger.error("Request ID:       " + ase.getRequestId());
+            throw (ase);
+        } catch (AmazonClientException ace) {
+            logger.error("Caught an AmazonClientException, which means the client encountered "
+                    + "a serious internal problem while trying to communicate with S3, "
+                    + "such as not being able to access the network.");
+            logger.error("Error Message: " + ace.getMessage());
+            throw (ace);
+        }
+    }
+
+    /**
+     * Schreibt eine Zeile des Diff-Manifests
+     *
+     * @param writer  Der Writer des Manifests
+     * @param status  MISSING, EXTRA oder CHANGED
+     * @param summary Die Version des Objekts
+     * @throws IOException Datei kann nicht geschrieben werden
+     */
+    private static void writeManifestLine(Writer writer, String status, S3VersionSummary summary) throws IOException {
+        String versionId = summary.getVersionId() == null ? "" : summary.getVersionId();
+        writer.write(status + ";" + summary.getBucketName() + ";" + SdkHttpUtils.urlEncode(summary.getKey(), true)
+                + ";" + versionId
+                + ";" + summary.getSize() + ";" + summary.getETag() + "\n");
+    }
+
+    /**
+     * Vergleicht zwei ETags. Eine Multipart ETag hängt von der Teilgröße ab und ändert sich beim Kopieren mit
+     * anderer Teilgröße, sie wird deshalb nicht verglichen (es zählt dann nur die Größe).
+     *
+     * @param a erste ETag
+     * @param b zweite ETag
+     * @return true falls beide ETags einfache MD5 Werte sind und sich unterscheiden
+     */
+    static boolean etagsDiffer(String a, String b) {
+        String first = stripQuotes(a);
+        String second = stripQuotes(b);
+        if (first.isEmpty() || second.isEmpty() || first.contains("-") || second.contains("-")) {
+            return false;
+        }
+        return !first.equalsIgnoreCase(second);
+    }
+
+    /**
+     * Vergleicht zwei Objektnamen in der Reihenfolge, in der S3 sie listet (UTF-8 Bytes, d.h. nach Codepoints).
+     * String.compareTo vergleicht UTF-16 Einheiten und weicht bei Zeichen außerhalb der BMP davon ab.
+     *
+     * @param a erster Objektname
+     * @param b zweiter Objektname
+     * @return negativ, 0 oder positiv wie bei compareTo
+     */
+    static int compareKeys(String a, String b) {
+        int i = 0, j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    /**
+     * Liefert die aktuelle Version jedes Objekts eines Buckets in S3-Reihenfolge.
+     * Die Seiten werden von einem eigenen Thread im Voraus geladen, die Queue ist auf wenige Seiten begrenzt.
+     * Mit VersionIDs wird die Versionsliste gelesen und Objekte, deren aktuelle Version ein Delete Marker ist,
+     * werden übersprungen. Ohne VersionIDs reicht ListObjectsV2, die VersionID bleibt dann leer.
+     */
+    private static class LatestVersionStream implements Iterator<S3VersionSummary>, Closeable {
+
+        private static final List<S3VersionSummary> END = Collections.emptyList();
+
+        private final BlockingQueue<List<S3VersionSummary>> pages = new ArrayBlockingQueue<>(2);
+        private final Thread fetcher;
+        private volatile Throwable failure;
+        private Iterator<S3VersionSummary> current = Collections.emptyIterator();
+        private boolean finished;
+
+        LatestVersionStream(AmazonS3 client, String bucketName, boolean withVersions) {
+            fetcher = new Thread(() -> {
+                boolean closed = false;
+                try {
+                    if (withVersions) {
+                        fetchVersions(client, bucketName);
+                    } else {
+                        fetchObjects(client, bucketName);
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    // END muss auch nach einem Error kommen, sonst wartet hasNext() endlos
+                    if (!closed) {
+                        try {
+                            pages.put(END);
+                        } catch (InterruptedException ignored) {
+                            // Consumer hat bereits abgebrochen
+                        }
+                    }
+                }
+            }, "list-" + bucketName);
+            fetcher.setDaemon(true);
+            fetcher.start();
+        }
+
+        private void fetchVersions(AmazonS3 client, String bucketName) throws InterruptedException {
+            VersionListing versionListing = client.listVersions(new ListVersionsRequest().withBucketName(bucketName));
+            while (true) {
+                List<S3VersionSummary> page = new ArrayList<>();
+                for (S3VersionSummary vs : versionListing.getVersionSummaries()) {
+                    if (vs.isLatest() && !vs.isDeleteMarker()) {
+                        page.add(vs);
+                    }
+                }
+                if (!page.isEmpty()) {
+                    pages.put(page);
+                }
+                if (versionListing.isTruncated()) {
+                    versionListing = client.listNextBatchOfVersions(versionListing);
+                } else {
+                    break;
+                }
+            }
+        }
+
+        private void fetchObjects(AmazonS3 client, String bucketName) throws InterruptedException {
+            ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName);
+            while (true) {
+                ListObjectsV2Result objectListing = client.listObjectsV2(request);
+                List<S3VersionSummary> page = new ArrayList<>();
+                for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
+                    S3VersionSummary vs = new S3VersionSummary();
+                    vs.setBucketName(summary.getBucketName());
+                    vs.setKey(summary.getKey());
+                    vs.setSize(summary.getSize());
+                    vs.setETag(summary.getETag());
+                    vs.setLastModified(summary.getLastModified());
+                    vs.setIsLatest(true);
+                    page.add(vs);
+                }
+                if (!page.isEmpty()) {
+                    pages.put(page);
+                }
+                if (objectListing.isTruncated()) {
+                    request.setContinuationToken(objectListing.getNextContinuationToken());
+                } else {
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && !finished) {
+                try {
+                    List<S3VersionSummary> page = pages.take();
+                    if (page == END) {
+                        finished = true;
+                        if (failure instanceof RuntimeException) {
+                            throw (RuntimeException) failure;
+                        } else if (failure instanceof Error) {
+                            throw (Error) failure;
+                        } else if (failure != null) {
+                            throw new SdkClientException("Listing failed", failure);
+                        }
+                    } else {
+                        current = page.iterator();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SdkClientException("Interrupted while listing versions", e);
+                }
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public S3VersionSummary next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void close() {
+            fetcher.interrupt();
+        }
+    }
+
+
+    /**
+     * Bereinigt alte Versionen eines versionierten Buckets nach Aufbewahrungsregeln.
+     * Die Versionsliste wird seitenweise gelesen und je Objekt ausgewertet, die Löschungen werden in
+     * DeleteObjectsRequest Batches zu maximal 1000 Versionen parallel abgesetzt.
+     * Die aktuelle Version eines Objekts wird nie gelöscht. Ein verwaister Delete Marker wird erst gelöscht,
+     * wenn alle älteren Versionen des Objekts fehlerfrei gelöscht wurden, sonst würde das Objekt wieder auftauchen.
+     *
+     * @param bucketName           Der Name des Buckets
+     * @param keepNewest           Anzahl der neuesten Versionen je Objekt, die behalten werden (0 = Regel aus)
+     * @param noncurrentDays       Nicht aktuelle Versionen löschen, die seit mehr als so vielen Tagen nicht
+     *                             mehr aktuell sind (0 = Regel aus)
+     * @param removeDeleteMarkers  true falls verwaiste Delete Marker (keine weitere Version vorhanden) gelöscht werden sollen
+     * @param dryRun               true falls nur ausgewertet und nichts gelöscht werden soll
+     * @param threads              Anzahl paralleler Delete Requests
+     * @throws Exception Exception
+     */
+    public void pruneVersions(String bucketName, int keepNewest, int noncurrentDays, boolean removeDeleteMarkers,
+                              boolean dryRun, int threads) throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        // Begrenzt die Anzahl wartender Batches, damit die Liste nicht komplett im Speicher landet
+        Semaphore inFlight = new Semaphore(Math.max(1, threads) * 2);
+        List<Future<Integer>> batches = new ArrayList<>();
+        AtomicLong deletedVersions = new AtomicLong();
+        AtomicLong deletedBytes = new AtomicLong();
+        AtomicLong failedVersions = new AtomicLong();
+        long matchedVersions = 0, matchedBytes = 0;
+
+        try {
+            // Nur einmal je Lauf prüfen, nicht je Version
+            String bucketVersionStatus = s3Client.getBucketVersioningConfiguration(bucketName).getStatus();
+            if (!BucketVersioningConfiguration.ENABLED.equals(bucketVersionStatus)
+                    && !BucketVersioningConfiguration.SUSPENDED.equals(bucketVersionStatus)) {
+                logger.info("Bucket " + bucketName + " is not versioning-enabled.");
+                return;
+            }
+
+            logger.info("Prune versions of bucket " + bucketName + " (keep newest: " + keepNewest
+                    + ", noncurrent days: " + noncurrentDays + ", delete markers: " + removeDeleteMarkers
+                    + ", dry run: " + dryRun + ")");
+
+            Date cutoff = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(noncurrentDays));
+            List<S3VersionSummary> pendingKey = new ArrayList<>();
+            PruneBatch batch = new PruneBatch();
+
+            VersionListing versionList = s3Client.listVersions(new ListVersionsRequest().withBucketName(bucketName));
+            while (true) {
+                for (List<S3VersionSummary> versionsOfKey : groupByKey(pendingKey, versionList.getVersionSummaries(),
+                        !versionList.isTruncated())) {
+                    List<S3VersionSummary> expired = selectExpiredVersions(versionsOfKey, keepNewest,
+                            noncurrentDays > 0 ? cutoff : null, removeDeleteMarkers);
+                    for (S3VersionSummary version : expired) {
+                        matchedVersions++;
+                        matchedBytes += version.isDeleteMarker() ? 0 : version.getSize();
+                        if (dryRun) {
+                            logger.info("Would delete " + version.getKey() + " with version " + version.getVersionId());
+                        }
+                    }
+
+                    if (!dryRun && !expired.isEmpty()) {
+                        // Ein verwaister Delete Marker ist immer der letzte Eintrag
+                        S3VersionSummary marker = null;
+                        if (expired.get(expired.size() - 1) == versionsOfKey.get(0)) {
+                            marker = expired.remove(expired.size() - 1);
+                        }
+
+                        // Alle Einträge eines Objekts kommen in denselben Batch
+                        if (batch.size() + expired.size() + 1 > PruneBatch.MAX_KEYS) {
+                            batches.add(submitDeleteBatch(executor, inFlight, bucketName, batch,
+                                    deletedVersions, deletedBytes, failedVersions));
+                            batch = new PruneBatch();
+                        }
+
+                        if (expired.size() + 1 > PruneBatch.MAX_KEYS) {
+                            // Passt nicht in einen Batch: erst die Versionen löschen, dann über den Marker entscheiden
+                            List<Future<Integer>> chunks = new ArrayList<>();
+                            for (int from = 0; from < expired.size(); from += PruneBatch.MAX_KEYS) {
+                                PruneBatch chunk = new PruneBatch();
+                                chunk.versions.addAll(expired.subList(from, Math.min(expired.size(), from + PruneBatch.MAX_KEYS)));
+                                chunks.add(submitDeleteBatch(executor, inFlight, bucketName, chunk,
+                                        deletedVersions, deletedBytes, failedVersions));
+                            }
+                            int failed = 0;
+                            for (Future<Integer> f : chunks) {
+                                failed += f.get();
+                            }
+                            if (marker != null && failed == 0) {
+                                batch.markers.add(marker);
+                            } else if (marker != null) {
+                                logger.warn("Keeping delete marker of " + marker.getKey() + ", not all versions were deleted");
+                            }
+                        } else {
+                            batch.versions.addAll(expired);
+                            if (marker != null) {
+                                batch.markers.add(marker);
+                            }
+                        }
+                    }
+                }
+
+                if (versionList.isTruncated()) {
+                    versionList = s3Client.listNextBatchOfVersions(versionList);
+                } else {
+                    break;
+                }
+            }
+
+            if (batch.size() > 0) {
+                batches.add(submitDeleteBatch(executor, inFlight, bucketName, batch,
+                        deletedVersions, deletedBytes, failedVersions));
+            }
+            for (Future<Integer> f : batches) {
+                f.get();
+            }
+
+            if (dryRun) {
+                logger.info("Dry run: " + matchedVersions + " versions would be deleted, " + matchedBytes
+                        + " bytes would be reclaimed");
+            } else {
+                logger.info("Prune finished: " + deletedVersions.get() + " versions deleted, " + failedVersions.get()
+                        + " failed, " + deletedBytes.get() + " bytes reclaimed");
+            }
+
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (AmazonServiceException ase) {
+            logger.error("Caught an AmazonServiceException, which means your request made it "
+                    + "to Amazon S3, but was rejected with an error response for some reason.");
+            logger.error("Error Message:    " + ase.getMessage());
+            logger.error("HTTP Status Code: " + ase.getStatusCode());
+            logger.error("AWS Error Code:   " + ase.getErrorCode());
+            logger.error("Error Type:       " + ase.getErrorType());
+            logger.error("Request ID:       " + ase.getRequestId());
+            throw (ase);
+        } catch (AmazonClientException ace) {
+            logger.error("Caught an AmazonClientException, which means the client encountered "
+                    + "a serious internal problem while trying to communicate with S3, "
+                    + "such as not being able to access the network.");
+            logger.error("Error Message: " + ace.getMessage());
+            throw (ace);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fasst die Versionen einer Seite der Versionsliste je Objekt zusammen. Die Versionen eines Objekts kommen
+     * zusammenhängend (neueste zuerst), können aber über eine Seitengrenze reichen. Das letzte Objekt einer Seite
+     * bleibt deshalb in pending, bis der nächste Objektname oder die letzte Seite kommt.
+     *
+     * @param pending  Versionen des noch nicht abgeschlossenen Objekts, wird fortgeschrieben
+     * @param page     Die Versionen der aktuellen Seite
+     * @param lastPage true falls dies die letzte Seite ist
+     * @return die vollständigen Versionslisten je Objekt
+     */
+    static List<List<S3VersionSummary>> groupByKey(List<S3VersionSummary> pending, List<S3VersionSummary> page,
+                                                   boolean lastPage) {
+        List<List<S3VersionSummary>> complete = new ArrayList<>();
+        for (S3VersionSummary vs : page) {
+            if (!pending.isEmpty() && !pending.get(0).getKey().equals(vs.getKey())) {
+                complete.add(new ArrayList<>(pending));
+                pending.clear();
+            }
+            pending.add(vs);
+        }
+        if (lastPage && !pending.isEmpty()) {
+            complete.add(new ArrayList<>(pending));
+            pending.clear();
+        }
+        return complete;
+    }
+
+    /**
+     * Wertet die Aufbewahrungsregeln für alle Versionen eines Objekts aus. Die neuesten keepNewest Einträge
+     * werden nie gelöscht. Sind beide Regeln aktiv, muss eine Version beide erfüllen (wie NewerNoncurrentVersions
+     * und NoncurrentDays einer S3 Lifecycle Regel). Ein aktueller Delete Marker zählt als einer der neuesten
+     * Einträge, da er eine Version des Objekts ist.
+     *
+     * @param versionsOfKey       Alle Versionen eines Objekts, neueste zuerst
+     * @param keepNewest          Anzahl der neuesten Versionen, die behalten werden (0 = Regel aus)
+     * @param cutoff              Versionen, die vor diesem Zeitpunkt nicht mehr aktuell wurden, werden gelöscht (null = Regel aus)
+     * @param removeDeleteMarkers true falls ein verwaister Delete Marker gelöscht werden soll
+     * @return die zu löschenden Versionen, ein verwaister Delete Marker als letzter Eintrag
+     */
+    static List<S3VersionSummary> selectExpiredVersions(List<S3VersionSummary> versionsOfKey, int keepNewest,
+                                                        Date cutoff, boolean removeDeleteMarkers) {
+        List<S3VersionSummary> expired = new ArrayList<>();
+        for (int i = Math.max(1, keepNewest); i < versionsOfKey.size(); i++) {
+            // Eine Version ist seit dem Zeitpunkt nicht mehr aktuell, an dem die nächst neuere entstanden ist
+            Date noncurrentSince = versionsOfKey.get(i - 1).getLastModified();
+            boolean old = cutoff == null || noncurrentSince != null && noncurrentSince.before(cutoff);
+            if ((keepNewest > 0 || cutoff != null) && old) {
+                expired.add(versionsOfKey.get(i));
+            }
+        }
+
+        S3VersionSummary latest = versionsOfKey.get(0);
+        if (removeDeleteMarkers && latest.isDeleteMarker() && expired.size() == versionsOfKey.size() - 1) {
+            expired.add(latest);
+        }
+        return expired;
+    }
+
+    /**
+     * Zu löschende Einträge eines Batches. Verwaiste Delete Marker werden getrennt gehalten, weil sie erst nach
+     * ihren Versionen gelöscht werden dürfen.
+     */
+    private static class PruneBatch {
+
+        static final int MAX_KEYS = 1000;
+
+        final List<S3VersionSummary> versions = new ArrayList<>();
+        final List<S3VersionSummary> markers = new ArrayList<>();
+
+        int size() {
+            return versions.size() + markers.size();
+        }
+    }
+
+    /**
+     * Setzt die DeleteObjectsRequests eines Batches im Hintergrund ab. Zuerst werden die Versionen gelöscht,
+     * danach die Delete Marker der Objekte, bei denen dabei kein Fehler aufgetreten ist.
+     *
+     * @param executor        Der Thread Pool
+     * @param inFlight        Begrenzung der gleichzeitig wartenden Batches
+     * @param bucketName      Der Name des Buckets
+     * @param batch           Die zu löschenden Einträge (maximal 1000)
+     * @param deletedVersions Zähler der gelöschten Versionen
+     * @param deletedBytes    Zähler der freigegebenen Bytes
+     * @param failedVersions  Zähler der nicht gelöschten Versionen
+     * @return Future mit der Anzahl der nicht gelöschten Einträge
+     * @throws InterruptedException beim Warten auf einen freien Platz unterbrochen
+     */
+    private Future<Integer> submitDeleteBatch(ExecutorService executor, Semaphore inFlight, String bucketName,
+                                              PruneBatch batch, AtomicLong deletedVersions, AtomicLong deletedBytes,
+                                              AtomicLong failedVersions) throws InterruptedException {
+        inFlight.acquire();
+        return executor.submit(() -> {
+            try {
+                Set<String> failedKeys = new HashSet<>();
+                Set<String> failed = deleteVersions(bucketName, batch.versions);
+                for (S3VersionSummary version : batch.versions) {
+                    if (failed.contains(version.getKey() + ";" + version.getVersionId())) {
+                        failedKeys.add(version.getKey());
+                    } else {
+                        deletedBytes.addAndGet(version.getSize());
+                    }
+                }
+
+                List<S3VersionSummary> markers = new ArrayList<>();
+                for (S3VersionSummary marker : batch.markers) {
+                    if (failedKeys.contains(marker.getKey())) {
+                        logger.warn("Keeping delete marker of " + marker.getKey() + ", not all versions were deleted");
+                    } else {
+                        markers.add(marker);
+                    }
+                }
+                int failedMarkers = deleteVersions(bucketName, markers).size();
+
+                int failedCount = failed.size() + failedMarkers;
+                deletedVersions.addAndGet(batch.versions.size() + markers.size() - failedCount);
+                failedVersions.addAndGet(failedCount);
+                logger.info("Deleted batch of " + (batch.versions.size() + markers.size() - failedCount) + " versions");
+                return failedCount;
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Löscht Versionen mit einem DeleteObjectsRequest
+     *
+     * @param bucketName Der Name des Buckets
+     * @param versions   Die zu löschenden Versionen (maximal 1000)
+     * @return Objektname;VersionID der Versionen, die nicht gelöscht werden konnten
+     */
+    private Set<String> deleteVersions(String bucketName, List<S3VersionSummary> versions) {
+        Set<String> failed = new HashSet<>();
+        if (versions.isEmpty()) {
+            return failed;
+        }
+        List<DeleteObjectsRequest.KeyVersion> keys = new ArrayList<>();
+        for (S3VersionSummary version : versions) {
+            keys.add(new DeleteObjectsRequest.KeyVersion(version.getKey(), version.getVersionId()));
+        }
+        try {
+            // Im Quiet Modus werden nur Fehler gemeldet, diese kommen als MultiObjectDeleteException
+            s3Client.deleteObjects(new DeleteObjectsRequest(bucketName)
+                    .withKeys(keys)
+                    .withQuiet(true));
+        } catch (MultiObjectDeleteException mode) {
+            for (MultiObjectDeleteException.DeleteError error : mode.getErrors()) {
+                logger.error("Cannot delete " + error.getKey() + " with version " + error.getVersionId()
+                        + ": " + error.getCode() + " " + error.getMessage());
+                failed.add(error.getKey() + ";" + error.getVersionId());
+            }
+        }
+        return failed;
+    }
+
+
+    /**
+     * Prüft die Objekte eines Buckets gegen lokale Kopien oder gegen ein Manifest.
+     * Ist path ein Verzeichnis, wird für jedes Objekt unter prefix die lokale Datei path/Objektname gehasht und
+     * wie beim Download mit x-amz-meta-md5 oder der ETag verglichen (bei Multipart Objekten mit gleicher Teilgröße).
+     * Ist path eine Datei, wird sie als Manifest gelesen:
+     * <ul>
+     * <li>Zeilen aus -listBucketToFile (Objektname;VersionID): die Version muss in bucketName existieren</li>
+     * <li>Zeilen aus -diff (Status;Bucket;Objektname URL-kodiert;VersionID;Größe;ETag) prüfen das Ergebnis des Copy- bzw.
+     * Delete-Jobs in bucketName (dem Ziel-Bucket): MISSING und CHANGED müssen mit Größe und ETag vorhanden sein,
+     * EXTRA darf nicht mehr existieren. Bucket und VersionID der Zeile beziehen sich auf die Quelle und werden
+     * nicht verwendet.</li>
+     * </ul>
+     * Zeilen in anderem Format zählen als Fehler. Die Prüfungen laufen parallel auf threads Threads.
+     *
+     * @param bucketName Der Name des Buckets
+     * @param prefix     Prefix der zu prüfenden Objekte (nur Verzeichnis Modus)
+     * @param path       Lokales Verzeichnis oder Manifest Datei
+     * @param threads    Anzahl paralleler Prüfungen
+     * @throws Exception Exception
+     */
+    public void verify(String bucketName, String prefix, String path, int threads) throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        Semaphore inFlight = new Semaphore(Math.max(1, threads) * 4);
+        List<Future<?>> checks = new ArrayList<>();
+        AtomicLong ok = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        File local = new File(path);
+
+        try {
+            if (local.isDirectory()) {
+                logger.info("Verify objects of bucket \"" + bucketName + "\" with prefix \"" + prefix
+                        + "\" against directory \"" + path + "\"");
+                ObjectListing objectListing = s3Client.listObjects(new ListObjectsRequest()
+                        .withBucketName(bucketName)
+                        .withPrefix(prefix));
+                while (true) {
+                    for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
+                        if (summary.getKey().endsWith("/")) {
+                            continue;
+                        }
+                        inFlight.acquire();
+                        checks.add(executor.submit(() -> {
+                            try {
+                                countResult(verifyLocalCopy(summary, new File(local, summary.getKey())), ok, failed);
+                            } finally {
+                                inFlight.release();
+                            }
+                            return null;
+                        }));
+                    }
+
+                    if (objectListing.isTruncated()) {
+                        objectListing = s3Client.listNextBatchOfObjects(objectListing);
+                    } else {
+                        break;
+                    }
+                }
+            } else {
+                logger.info("Verify manifest \"" + path + "\" against bucket \"" + bucketName + "\"");
+                try (BufferedReader reader = new BufferedReader(new FileReader(local))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] fields = line.split(";", -1);
+                        if (fields.length != 2 && fields.length != 6) {
+                            logger.warn("INVALID manifest line (expected 2 or 6 fields): " + line);
+                            failed.incrementAndGet();
+                            continue;
+                        }
+                        inFlight.acquire();
+                        checks.add(executor.submit(() -> {
+                            try {
+                                countResult(verifyManifestLine(bucketName, fields), ok, failed);
+                            } finally {
+                                inFlight.release();
+                            }
+                            return null;
+                        }));
+                    }
+                }
+            }
+
+            for (Future<?> f : checks) {
+                f.get();
+            }
+            logger.info("Verify finished: " + ok.get() + " ok, " + failed.get() + " failed");
+
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (AmazonServiceException ase) {
+            logger.error("Caught an AmazonServiceException, which means your request made it "
+                    + "to Amazon S3, but was rejected with an error response for some reason.");
+            logger.error("Error Message:    " + ase.getMessage());
+            logger.error("HTTP Status Code: " + ase.getStatusCode());
+            logger.error("AWS Error Code:   " + ase.getErrorCode());
+            logger.error("Error Type:       " + ase.getErrorType());
+            logger.error("Request ID:       " + ase.getRequestId());
+            throw (ase);
+        } catch (AmazonClientException ace) {
+            logger.error("Caught an AmazonClientException, which means the client encountered "
+                    + "a serious internal problem while trying to communicate with S3, "
+                    + "such as not being able to access the network.");
+            logger.error("Error Message: " + ace.getMessage());
+            throw (ace);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void countResult(boolean result, AtomicLong ok, AtomicLong failed) {
+        if (result) {
+            ok.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Hasht eine lokale Datei und vergleicht sie mit Größe und ETag des Objekts
+     *
+     * @param summary Das Objekt im Storage
+     * @param file    Die lokale Kopie
+     * @return true falls die lokale Kopie dem Objekt entspricht
+     * @throws IOException Datei kann nicht gelesen werden
+     */
+    private boolean verifyLocalCopy(S3ObjectSummary summary, File file) throws IOException {
+        if (!file.isFile()) {
+            logger.warn("MISSING " + summary.getKey() + ": no local file " + file.getPath());
+            return false;
+        }
+        if (file.length() != summary.getSize()) {
+            logger.warn("MISMATCH " + summary.getKey() + ": size " + file.length() + " expected " + summary.getSize());
+            return false;
+        }
+
+        ObjectMetadata metadata = s3Client.getObjectMetadata(summary.getBucketName(), summary.getKey());
+        boolean md5 = metadata.getUserMetaDataOf("md5") != null;
+        if (!md5 && !isMd5ETag(metadata.getSSEAlgorithm(), metadata.getSSECustomerAlgorithm())) {
+            logger.info("ETag of " + summary.getKey() + " is no MD5 (server side encryption), only size verified");
+            return true;
+        }
+
+        long partSize = md5 ? 0 : partSizeOf(summary.getBucketName(), summary.getKey(), null, metadata.getETag());
+        ETagCalculator calculator = new ETagCalculator(partSize, md5);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long chunk = 64L * 1024 * 1024;
+            for (long position = 0; position < channel.size(); position += chunk) {
+                calculator.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(chunk, channel.size() - position)));
+            }
+        }
+
+        try {
+            checkIntegrity(summary.getKey(), metadata, calculator);
+        } catch (SdkClientException sce) {
+            logger.warn("MISMATCH " + sce.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Prüft eine Zeile eines Manifests gegen das Storage
+     *
+     * @param bucketName Der Name des zu prüfenden Buckets
+     * @param fields     Die Felder der Zeile
+     * @return true falls das Objekt dem Manifest entspricht
+     */
+    private boolean verifyManifestLine(String bucketName, String[] fields) {
+        if (fields.length == 2) {
+            String versionId = fields[1].isEmpty() || fields[1].equals("null") ? null : fields[1];
+            if (headOrNull(bucketName, fields[0], versionId) == null) {
+                logger.warn("MISSING " + fields[0] + " with version " + versionId);
+                return false;
+            }
+            logger.debug("OK " + fields[0]);
+            return true;
+        }
+
+        String status = fields[0];
+        String key = SdkHttpUtils.urlDecode(fields[2]);
+        ObjectMetadata metadata = headOrNull(bucketName, key, null);
+        switch (status) {
+            case "MISSING":
+            case "CHANGED":
+                if (metadata == null) {
+                    logger.warn("MISSING " + key + " (" + status + " in manifest)");
+                    return false;
+                }
+                if (metadata.getContentLength() != Long.parseLong(fields[4])
+                        || etagsDiffer(metadata.getETag(), fields[5])) {
+                    logger.warn("MISMATCH " + key + ": size " + metadata.getContentLength() + " ETag " + metadata.getETag()
+                            + " expected " + fields[4] + " " + fields[5]);
+                    return false;
+                }
+                break;
+            case "EXTRA":
+                if (metadata != null) {
+                    logger.warn("EXTRA " + key + " still exists in bucket " + bucketName);
+                    return false;
+                }
+                break;
+            default:
+                logger.warn("INVALID manifest status " + status + " for " + key);
+                return false;
+        }
+        logger.debug("OK " + key);
+        return true;
+    }
+
+    /**
+     * Liest die Metadaten eines Objekts
+     *
+     * @param bucketName Der Name des Buckets
+     * @param objectName Der ObjektName des Objekts im Storage
+     * @param versionId  Die Versionsid oder null
+     * @return die Metadaten oder null falls das Objekt nicht existiert
+     */
+    private ObjectMetadata headOrNull(String bucketName, String objectName, String versionId) {
+        try {
+            return s3Client.getObjectMetadata(new GetObjectMetadataRequest(bucketName, objectName, versionId));
+        } catch (AmazonServiceException ase) {
+            if (ase.getStatusCode() == 404) {
+                return null;
+            }
+            throw ase;
+        }
+    }
+
+    /**
+     * Ermittelt die Teilgröße eines Multipart Objekts über die Größe des ersten Teils
+     *
+     * @param bucketName Der Name des Buckets
+     * @param objectName Der ObjektName des Objekts im Storage
+     * @param versionId  Die Versionsid oder null
+     * @param etag       Die ETag des Objekts
+     * @return Teilgröße in Bytes, 0 falls es kein Multipart Objekt ist
+     */
+    private long partSizeOf(String bucketName, String objectName, String versionId, String etag) {
+        if (etag == null || !etag.contains("-")) {
+            return 0;
+        }
+        return s3Client.getObjectMetadata(new GetObjectMetadataRequest(bucketName, objectName, versionId)
+                .withPartNumber(1)).getContentLength();
+    }
+
+    /**
+     * Liefert den Inhalt eines Objekts als Stream, der beim Lesen die Prüfsummen berechnet, die das SDK nicht
+     * selbst prüft: x-amz-meta-md5 und die ETag von Multipart Objekten. Einfache Objekte prüft das SDK bereits.
+     *
+     * @param object Das Objekt
+     * @return Stream über den Inhalt, nach dem Lesen mit verify() prüfen
+     */
+    private ChecksumInputStream openVerified(S3Object object) {
+        ObjectMetadata metadata = object.getObjectMetadata();
+        boolean md5 = metadata.getUserMetaDataOf("md5") != null;
+        boolean multipart = metadata.getETag() != null && metadata.getETag().contains("-")
+                && isMd5ETag(metadata.getSSEAlgorithm(), metadata.getSSECustomerAlgorithm());
+        ETagCalculator calculator = null;
+        if (md5) {
+            calculator = new ETagCalculator(0, true);
+        } else if (multipart) {
+            calculator = new ETagCalculator(partSizeOf(object.getBucketName(), object.getKey(),
+                    metadata.getVersionId(), metadata.getETag()), false);
+        }
+        return new ChecksumInputStream(object.getObjectContent(), object.getKey(), metadata, calculator);
+    }
+
+    /**
+     * Speichert ein Objekt zuerst in einer temporären Datei im Zielverzeichnis und ersetzt die Zieldatei erst
+     * nach erfolgreicher Prüfung, eine vorhandene gute Kopie wird so nicht durch einen fehlerhaften Download
+     * überschrieben. Die temporäre Datei wird normal angelegt, damit die umask gilt, eine vorhandene
+     * Zieldatei gibt ihre Berechtigungen weiter.
+     *
+     * @param object     Das Objekt
+     * @param targetFile Die Zieldatei
+     * @throws IOException Datei kann nicht geschrieben werden
+     */
+    private void downloadVerified(S3Object object, File targetFile) throws IOException {
+        java.nio.file.Path target = targetFile.getAbsoluteFile().toPath();
+        java.nio.file.Path temp = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".part");
+        try (ChecksumInputStream content = openVerified(object)) {
+            try (OutputStream out = java.nio.file.Files.newOutputStream(temp,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                IOUtils.copy(content, out);
+            }
+            content.verify();
+            if (java.nio.file.Files.exists(target) && java.nio.file.Files.getFileStore(target)
+                    .supportsFileAttributeView(java.nio.file.attribute.PosixFileAttributeView.class)) {
+                java.nio.file.Files.setPosixFilePermissions(temp, java.nio.file.Files.getPosixFilePermissions(target));
+            }
+            java.nio.file.Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            java.nio.file.Files.deleteIfExists(temp);
+        }
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    /**
+     * Bei serverseitiger Verschlüsselung mit KMS oder eigenem Schlüssel ist die ETag keine MD5 des Inhalts
+     *
+     * @param sseAlgorithm         Der SSE Algorithmus der Antwort
+     * @param sseCustomerAlgorithm Der SSE-C Algorithmus der Antwort
+     * @return true falls die ETag mit einer MD5 verglichen werden kann
+     */
+    private static boolean isMd5ETag(String sseAlgorithm, String sseCustomerAlgorithm) {
+        return !SSEAlgorithm.KMS.getAlgorithm().equals(sseAlgorithm) && sseCustomerAlgorithm == null;
+    }
+
+    private static String stripQuotes(String etag) {
+        return etag == null ? "" : etag.replace("\"", "");
+    }
+
+    /**
+     * Vergleicht die vom Storage gemeldete ETag mit dem beim Übertragen berechneten Wert
+     *
+     * @param objectName Der ObjektName für die Meldung
+     * @param etag       Die ETag aus der Antwort des Storage
+     * @param expected   Die berechnete ETag
+     * @throws SdkClientException falls die Werte nicht übereinstimmen
+     */
+    private static void verifyETag(String objectName, String etag, String expected) {
+        if (!stripQuotes(etag).equalsIgnoreCase(expected)) {
+            throw new SdkClientException("Integrity check failed for " + objectName + ": ETag " + etag
+                    + " but calculated " + expected);
+        }
+        logger.info("Integrity of " + objectName + " verified (" + expected + ")");
+    }
+
+    /**
+     * Vergleicht berechnete Prüfsummen mit dem Objekt: mit x-amz-meta-md5 falls vorhanden, sonst mit der ETag.
+     * Bei serverseitiger Verschlüsselung mit KMS oder eigenem Schlüssel ist die ETag keine MD5 und wird nicht geprüft.
+     *
+     * @param objectName Der ObjektName für die Meldung
+     * @param metadata   Die Metadaten des Objekts
+     * @param calculator Die über den Inhalt berechneten Prüfsummen
+     * @throws SdkClientException falls die Prüfsumme nicht übereinstimmt
+     */
+    private static void checkIntegrity(String objectName, ObjectMetadata metadata, ETagCalculator calculator) {
+        String md5 = metadata.getUserMetaDataOf("md5");
+        if (md5 != null) {
+            verifyETag(objectName, md5, calculator.getContentMd5());
+        } else if (isMd5ETag(metadata.getSSEAlgorithm(), metadata.getSSECustomerAlgorithm())) {
+            verifyETag(objectName, metadata.getETag(), calculator.getETag());
+        } else {
+            logger.info("ETag of " + objectName + " is no MD5 (server side encryption), integrity not verified");
+        }
+    }
+
+    /**
+     * Berechnet die ETag wie S3: MD5 des Inhalts, bei Multipart Objekten MD5 über die MD5 Werte der Teile
+     * mit angehängter Anzahl der Teile. Bei Multipart Objekten optional zusätzlich die MD5 über den gesamten Inhalt.
+     */
+    private static class ETagCalculator {
+
+        private final long partSize;
+        private final MessageDigest part = newMd5();
+        private final MessageDigest parts = newMd5();
+        private final MessageDigest whole;
+        private String wholeHex;
+        private long inPart;
+        private int partCount;
+
+        /**
+         * @param partSize  Teilgröße in Bytes, 0 für Objekte ohne Multipart
+         * @param wholeMd5  true falls bei Multipart Objekten zusätzlich die MD5 über den gesamten Inhalt
+         *                  berechnet werden soll
+         */
+        ETagCalculator(long partSize, boolean wholeMd5) {
+            this.partSize = partSize;
+            this.whole = wholeMd5 || partSize <= 0 ? newMd5() : null;
+        }
+
+        void update(byte[] b, int off, int len) {
+            update(ByteBuffer.wrap(b, off, len));
+        }
+
+        void update(ByteBuffer data) {
+            if (whole != null) {
+                whole.update(data.duplicate());
+            }
+            if (partSize <= 0) {
+                ((Buffer) data).position(data.limit());
+                return;
+            }
+            while (data.hasRemaining()) {
+                int count = (int) Math.min(data.remaining(), partSize - inPart);
+                ByteBuffer slice = data.duplicate();
+                ((Buffer) slice).limit(slice.position() + count);
+                part.update(slice);
+                ((Buffer) data).position(data.position() + count);
+                inPart += count;
+                if (inPart == partSize) {
+                    finishPart();
+                }
+            }
+        }
+
+        private void finishPart() {
+            parts.update(part.digest());
+            partCount++;
+            inPart = 0;
+        }
+
+        String getETag() {
+            if (partSize <= 0) {
+                return getContentMd5();
+            }
+            if (inPart > 0 || partCount == 0) {
+                finishPart();
+            }
+            return BinaryUtils.toHex(parts.digest()) + "-" + partCount;
+        }
+
+        String getContentMd5() {
+            if (wholeHex == null && whole != null) {
+                wholeHex = BinaryUtils.toHex(whole.digest());
+            }
+            return wholeHex;
+        }
+    }
+
+    /**
+     * Reicht den Inhalt eines Objekts durch und berechnet dabei die Prüfsummen, siehe checkIntegrity.
+     * Ohne calculator wird nur durchgereicht, weil das SDK einfache Objekte selbst prüft.
+     */
+    private static class ChecksumInputStream extends FilterInputStream {
+
+        private final String objectName;
+        private final ObjectMetadata metadata;
+        private final ETagCalculator calculator;
+
+        ChecksumInputStream(InputStream in, String objectName, ObjectMetadata metadata, ETagCalculator calculator) {
+            super(in);
+            this.objectName = objectName;
+            this.metadata = metadata;
+            this.calculator = calculator;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0 && calculator != null) {
+                calculator.update(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0 && calculator != null) {
+                calculator.update(b, off, count);
+            }
+            return count;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Prüft die berechneten Werte, der Stream muss vollständig gelesen sein
+         *
+         * @throws SdkClientException falls die Prüfsumme nicht übereinstimmt
+         */
+        void verify() {
+            if (calculator != null) {
+                checkIntegrity(objectName, metadata, calculator);
+            }
+        }
+    }
+
+
+    /**
+     * Führt eine SQL Abfrage (S3 Select) auf allen Objekten unter einem Prefix aus und schreibt die
+     * Ergebnisse auf eine Datei oder stdout. Die Objekte werden parallel abgefragt, gefiltert wird auf dem
+     * Server, übertragen werden nur die Ergebniszeilen.
+     * Unterstützt der Endpunkt S3 Select nicht, wird das Objekt zeilenweise gestreamt und clientseitig mit
+     * fallbackPattern gefiltert (ein regulärer Ausdruck, die SQL Abfrage wird dabei nicht ausgewertet).
+     * Ist dann kein fallbackPattern gesetzt, bricht die Abfrage mit einem Fehler ab, statt ungefilterte Daten
+     * als Ergebnis auszugeben.
+     *
+     * @param bucketName      Der Name des Buckets
+     * @param prefix          Prefix der abzufragenden Objekte (oder ein einzelner Objektname)
+     * @param sql             Die SQL Abfrage, z.B. SELECT * FROM S3Object s WHERE s.id = '42'
+     * @param format          CSV (mit Kopfzeile) oder JSON (ein Dokument pro Zeile), .gz Objekte werden entpackt
+     * @param fallbackPattern Regulärer Ausdruck für die clientseitige Filterung, null falls nicht gewünscht
+     * @param filename        Datei für das Ergebnis, null oder "-" für stdout (die Log Ausgaben gehen nach stderr)
+     * @param threads         Anzahl paralleler Abfragen
+     * @throws Exception Exception
+     */
+    public void selectObjects(String bucketName, String prefix, String sql, String format, String fallbackPattern,
+                              String filename, int threads) throws Exception {
+
+        boolean json = "JSON".equalsIgnoreCase(format);
+        Pattern pattern = StringUtils.isNullOrEmpty(fallbackPattern) ? null : Pattern.compile(fallbackPattern);
+        boolean toStdout = StringUtils.isNullOrEmpty(filename) || filename.equals("-");
+        MinioClient minioClient = MinioClient.builder()
+                .endpoint(endpoint)
+                .credentials(accessKey, secretKey)
+                .build();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        Semaphore inFlight = new Semaphore(Math.max(1, threads) * 2);
+        List<Future<?>> queries = new ArrayList<>();
+        AtomicLong bytesScanned = new AtomicLong();
+        AtomicLong bytesReturned = new AtomicLong();
+
+        OutputStream out = toStdout ? System.out : new BufferedOutputStream(new FileOutputStream(filename));
+        try {
+            logger.info("Query objects of bucket \"" + bucketName + "\" with prefix \"" + prefix + "\": " + sql);
+            ObjectListing objectListing = s3Client.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucketName)
+                    .withPrefix(prefix));
+            while (true) {
+                for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
+                    if (summary.getKey().endsWith("/")) {
+                        continue;
+                    }
+                    inFlight.acquire();
+                    queries.add(executor.submit(() -> {
+                        try {
+                            selectObject(minioClient, summary, sql, json, pattern, out, bytesScanned, bytesReturned);
+                        } finally {
+                            inFlight.release();
+                        }
+                        return null;
+                    }));
+                }
+
+                if (objectListing.isTruncated()) {
+                    objectListing = s3Client.listNextBatchOfObjects(objectListing);
+                } else {
+                    break;
+                }
+            }
+
+            for (Future<?> f : queries) {
+                f.get();
+            }
+            out.flush();
+            logger.info("Query finished: " + queries.size() + " objects, " + bytesScanned.get() + " bytes scanned, "
+                    + bytesReturned.get() + " bytes returned");
+
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (AmazonServiceException ase) {
+            logger.error("Caught an AmazonServiceException, which means your request made it "
+                    + "to Amazon S3, but was rejected with an error response for some reason.");
+            logger.error("Error Message:    " + ase.getMessage());
+            logger.error("HTTP Status Code: " + ase.getStatusCode());
+            logger.error("AWS Error Code:   " + ase.getErrorCode());
+            logger.error("Error Type:       " + ase.getErrorType());
+            logger.error("Request ID:       " + ase.getRequestId());
+            throw (ase);
+        } catch (AmazonClientException ace) {
+            logger.error("Caught an AmazonClientException, which means the client encountered "
+                    + "a serious internal problem while trying to communicate with S3, "
+                    + "such as not being able to access the network.");
+            logger.error("Error Message: " + ace.getMessage());
+            throw (ace);
+        } finally {
+            executor.shutdownNow();
+            if (!toStdout) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Fragt ein einzelnes Objekt per S3 Select ab, bei fehlender Unterstützung clientseitig
+     *
+     * @param minioClient   Der Client für S3 Select
+     * @param summary       Das Objekt
+     * @param sql           Die SQL Abfrage
+     * @param json          true für JSON Lines, sonst CSV mit Kopfzeile
+     * @param pattern       Filter für die clientseitige Filterung oder null
+     * @param out           Ausgabe für die Ergebniszeilen, wird von allen Threads gemeinsam genutzt
+     * @param bytesScanned  Zähler der gelesenen Bytes
+     * @param bytesReturned Zähler der zurückgelieferten Bytes
+     * @throws Exception Exception
+     */
+    private void selectObject(MinioClient minioClient, S3ObjectSummary summary, String sql, boolean json,
+                              Pattern pattern, OutputStream out, AtomicLong bytesScanned, AtomicLong bytesReturned)
+            throws Exception {
+
+        boolean gzip = summary.getKey().endsWith(".gz");
+        if (!selectUnsupported) {
+            InputSerialization input = json
+                    ? new InputSerialization(gzip ? CompressionType.GZIP : CompressionType.NONE, JsonType.LINES)
+                    : new InputSerialization(gzip ? CompressionType.GZIP : CompressionType.NONE, false, null, ',',
+                    FileHeaderInfo.USE, '"', '"', '\n');
+            OutputSerialization output = json
+                    ? new OutputSerialization('\n')
+                    : new OutputSerialization(',', '"', '"', QuoteFields.ASNEEDED, '\n');
+
+            try (SelectResponseStream result = minioClient.selectObjectContent(SelectObjectContentArgs.builder()
+                    .bucket(summary.getBucketName())
+                    .object(summary.getKey())
+                    .sqlExpression(sql)
+                    .inputSerialization(input)
+                    .outputSerialization(output)
+                    .requestProgress(true)
+                    .build())) {
+
+                copyLines(result, out, false, null);
+                Stats stats = result.stats();
+                if (stats != null) {
+                    bytesScanned.addAndGet(stats.bytesScanned());
+                    bytesReturned.addAndGet(stats.bytesReturned());
+                }
+                logger.debug("Queried " + summary.getKey() + " with S3 Select");
+                return;
+            } catch (ErrorResponseException ere) {
+                String code = ere.errorResponse().code();
+                if (!"NotImplemented".equals(code) && !"XNotImplemented".equals(code) && ere.response().code() != 501) {
+                    throw ere;
+                }
+                logger.warn("S3 Select is not supported by the endpoint (" + code + ")");
+                selectUnsupported = true;
+            }
+        }
+
+        if (pattern == null) {
+            logger.error("Cannot query " + summary.getKey() + ": S3 Select is not supported and no fallback pattern is set");
+            throw new SdkClientException("S3 Select is not supported by the endpoint and no QueryFallbackPattern is configured");
+        }
+        logger.info("Filtering " + summary.getKey() + " on the client with pattern " + pattern.pattern());
+
+        try (S3Object object = s3Client.getObject(summary.getBucketName(), summary.getKey())) {
+            InputStream content = gzip ? new GZIPInputStream(object.getObjectContent()) : object.getObjectContent();
+            bytesScanned.addAndGet(summary.getSize());
+            // Kopfzeile entspricht FileHeaderInfo.USE, S3 Select liefert sie ebenfalls nicht
+            bytesReturned.addAndGet(copyLines(content, out, !json, pattern));
+        }
+    }
+
+    /**
+     * Kopiert die Zeilen eines Streams blockweise auf die gemeinsame Ausgabe, Zeilen werden nicht zerteilt
+     *
+     * @param in         Der Stream mit den Zeilen
+     * @param out        Die gemeinsame Ausgabe
+     * @param skipHeader true falls die erste Zeile (CSV Kopfzeile) übersprungen werden soll
+     * @param pattern    Filter für die Zeilen oder null
+     * @return Anzahl geschriebener Bytes
+     * @throws IOException IOException
+     */
+    private static long copyLines(InputStream in, OutputStream out, boolean skipHeader, Pattern pattern)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        StringBuilder block = new StringBuilder();
+        long written = 0;
+        String line;
+        if (skipHeader) {
+            reader.readLine();
+        }
+        while ((line = reader.readLine()) != null) {
+            if (pattern == null || pattern.matcher(line).find()) {
+                block.append(line).append('\n');
+            }
+            if (block.length() >= 64 * 1024) {
+                written += writeBlock(out, block);
+            }
+        }
+        return written + writeBlock(out, block);
+    }
+
+    private static long writeBlock(OutputStream out, StringBuilder block) throws IOException {
+        if (block.length() == 0) {
+            return 0;
+        }
+        byte[] bytes = block.toString().getBytes(StandardCharsets.UTF_8);
+        synchronized (out) {
+            out.write(bytes);
+        }
+        block.setLength(0);
+        return bytes.length;
+    }
 }
@@ -0,0 +1,131 @@
+package s3client;
+
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class S3LoadClientTest {
+
+    private static final long NOW = System.currentTimeMillis();
+
+    private static S3VersionSummary version(String key, String versionId, int daysAgo, boolean deleteMarker) {
+        S3VersionSummary vs = new S3VersionSummary();
+        vs.setKey(key);
+        vs.setVersionId(versionId);
+        vs.setLastModified(new Date(NOW - TimeUnit.DAYS.toMillis(daysAgo)));
+        vs.setIsDeleteMarker(deleteMarker);
+        return vs;
+    }
+
+    private static List<String> versionIds(List<S3VersionSummary> versions) {
+        List<String> ids = new ArrayList<>();
+        for (S3VersionSummary vs : versions) {
+            ids.add(vs.getVersionId());
+        }
+        return ids;
+    }
+
+    private static Date daysAgo(int days) {
+        return new Date(NOW - TimeUnit.DAYS.toMillis(days));
+    }
+
+    @Test
+    public void keepNewestProtectsRecentVersionsFromDaysRule() {
+        // Alle Versionen sind alt, die neuesten zwei bleiben trotzdem erhalten
+        List<S3VersionSummary> versions = Arrays.asList(
+                version("a", "v4", 100, false),
+                version("a", "v3", 200, false),
+                version("a", "v2", 300, false),
+                version("a", "v1", 400, false));
+
+        List<S3VersionSummary> expired = S3LoadClient.selectExpiredVersions(versions, 2, daysAgo(30), false);
+
+        assertEquals(Arrays.asList("v2", "v1"), versionIds(expired));
+    }
+
+    @Test
+    public void bothRulesMustMatch() {
+        // v2 liegt ausserhalb der neuesten zwei, ist aber erst seit 10 Tagen nicht mehr aktuell
+        List<S3VersionSummary> versions = Arrays.asList(
+                version("a", "v4", 1, false),
+                version("a", "v3", 10, false),
+                version("a", "v2", 100, false),
+                version("a", "v1", 200, false));
+
+        List<S3VersionSummary> expired = S3LoadClient.selectExpiredVersions(versions, 2, daysAgo(30), false);
+
+        assertEquals(Collections.singletonList("v1"), versionIds(expired));
+    }
+
+    @Test
+    public void singleRules() {
+        List<S3VersionSummary> versions = Arrays.asList(
+                version("a", "v3", 50, false),
+                version("a", "v2", 100, false),
+                version("a", "v1", 200, false));
+
+        assertEquals(Arrays.asList("v2", "v1"),
+                versionIds(S3LoadClient.selectExpiredVersions(versions, 0, daysAgo(30), false)));
+        assertEquals(Collections.singletonList("v1"),
+                versionIds(S3LoadClient.selectExpiredVersions(versions, 2, null, false)));
+        assertTrue(S3LoadClient.selectExpiredVersions(versions, 0, null, false).isEmpty());
+    }
+
+    @Test
+    public void currentDeleteMarkerCountsAsNewest() {
+        List<S3VersionSummary> versions = Arrays.asList(
+                version("a", "m", 1, true),
+                version("a", "v2", 100, false),
+                version("a", "v1", 200, false));
+
+        assertEquals(Collections.singletonList("v1"),
+                versionIds(S3LoadClient.selectExpiredVersions(versions, 2, null, true)));
+    }
+
+    @Test
+    public void orphanedDeleteMarkerIsRemovedLast() {
+        List<S3VersionSummary> versions = Arrays.asList(
+                version("a", "m", 50, true),
+                version("a", "v2", 100, false),
+                version("a", "v1", 200, false));
+
+        assertEquals(Arrays.asList("v2", "v1", "m"),
+                versionIds(S3LoadClient.selectExpiredVersions(versions, 0, daysAgo(30), true)));
+        assertEquals(Arrays.asList("v2", "v1"),
+                versionIds(S3LoadClient.selectExpiredVersions(versions, 0, daysAgo(30), false)));
+        assertEquals(Collections.singletonList("m"),
+                versionIds(S3LoadClient.selectExpiredVersions(Collections.singletonList(versions.get(0)), 1, null, true)));
+    }
+
+    @Test
+    public void groupByKeySpansPages() {
+        List<S3VersionSummary> pending = new ArrayList<>();
+
+        List<List<S3VersionSummary>> first = S3LoadClient.groupByKey(pending, Arrays.asList(
+                version("a", "a2", 1, false),
+                version("a", "a1", 2, false),
+                version("b", "b2", 1, false)), false);
+        assertEquals(1, first.size());
+        assertEquals(Arrays.asList("a2", "a1"), versionIds(first.get(0)));
+
+        List<List<S3VersionSummary>> second = S3LoadClient.groupByKey(pending, Arrays.asList(
+                version("b", "b1", 2, false),
+                version("c", "c1", 1, false)), false);
+        assertEquals(1, second.size());
+        assertEquals(Arrays.asList("b2", "b1"), versionIds(second.get(0)));
+
+        List<List<S3VersionSummary>> last = S3LoadClient.groupByKey(pending, Collections.<S3VersionSummary>emptyList(), true);
+        assertEquals(1, last.size());
+        assertEquals(Collections.singletonList("c1"), versionIds(last.get(0)));
+        assertTrue(pending.isEmpty());
+    }
+}